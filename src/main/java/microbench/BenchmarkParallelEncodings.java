@@ -0,0 +1,373 @@
+package microbench;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.hadoop.hbase.io.ImmutableBytesWritable;
+import org.apache.hadoop.hbase.types.Order;
+import org.apache.hadoop.hbase.util.ByteRange;
+import org.apache.hadoop.hbase.util.ByteRangeUtils;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.hbase.util.OrderedBytes;
+
+import com.google.caliper.AfterExperiment;
+import com.google.caliper.BeforeExperiment;
+import com.google.caliper.Benchmark;
+import com.google.caliper.Param;
+import com.google.caliper.api.VmOptions;
+import com.gotometrics.orderly.LongRowKey;
+import com.gotometrics.orderly.RowKeyUtils;
+import com.salesforce.phoenix.schema.ColumnModifier;
+import com.salesforce.phoenix.schema.PDataType;
+
+/**
+ * Models a bulk-load job: the dataset is split into one partition per
+ * thread, each partition encodes its keys back to back into its own buffer
+ * and sorts them, then the sorted runs are k-way merged by unsigned byte
+ * order on the calling thread.
+ * <p>
+ * {@code stage} controls how far down the pipeline each rep goes. Comparing
+ * ENCODE, SORT and MERGE timings across {@code threads} shows whether the
+ * encoder or the byte comparison limits parallel throughput. Keys are never
+ * allocated one array apiece, so per-key allocation does not blur the
+ * split; the exception is Phoenix, whose {@code toBytes} returns a fresh
+ * array per value, and that allocation is part of its encode cost.
+ * <p>
+ * Caliper reports only a time per scenario, so {@link #main} runs the same
+ * pipeline outside Caliper for one library per JVM and prints the scaling
+ * efficiency, {@code time(1) / (n * time(n))}, for thread counts up to
+ * {@link Runtime#availableProcessors()}. The {@code threads} values used
+ * under Caliper are fixed; those above the machine's core count measure
+ * oversubscription, not scaling.
+ */
+@VmOptions({ "-server" })
+public class BenchmarkParallelEncodings {
+
+  public enum Stage { ENCODE, SORT, MERGE }
+
+  static final int NUM_VALUES = 1 << 17;
+  static final int MAX_KEY_LENGTH = 16;
+
+  @Param({ "1", "2", "4", "8" }) int threads;
+  @Param({ "ENCODE", "SORT", "MERGE" }) Stage stage;
+  @Param({ "ASCENDING", "DESCENDING" }) Order order;
+
+  long[] vals;
+  ExecutorService pool;
+
+  ColumnModifier phoenixOrder;
+  com.gotometrics.orderly.Order orderlyOrder;
+
+  @BeforeExperiment
+  public void setUp() {
+    // initialize vals only once so that all timings are encoding the same
+    // dataset.
+    if (null == vals) {
+      Random rand = new Random(System.currentTimeMillis());
+      vals = new long[NUM_VALUES];
+      for (int i = 0; i < NUM_VALUES; i++)
+        vals[i] = rand.nextLong();
+    }
+
+    pool = Executors.newFixedThreadPool(threads);
+    phoenixOrder = Order.ASCENDING == this.order ? null : ColumnModifier.SORT_DESC;
+    orderlyOrder = Order.ASCENDING == this.order ?
+        com.gotometrics.orderly.Order.ASCENDING :
+        com.gotometrics.orderly.Order.DESCENDING;
+  }
+
+  @AfterExperiment
+  public void tearDown() {
+    pool.shutdownNow();
+    pool = null;
+    phoenixOrder = null;
+    orderlyOrder = null;
+  }
+
+  /**
+   * One partition's keys, back to back in {@code buf}. Key {@code i} spans
+   * {@code [offsets[i], offsets[i + 1])}; {@code order} lists key indices in
+   * sorted order once the SORT stage has run.
+   */
+  static class Run {
+    final byte[] buf;
+    final int[] offsets;
+    final int[] order;
+
+    Run(byte[] buf, int[] offsets, int[] order) {
+      this.buf = buf;
+      this.offsets = offsets;
+      this.order = order;
+    }
+
+    int compare(int a, Run other, int b) {
+      return Bytes.compareTo(
+        buf, offsets[a], offsets[a + 1] - offsets[a],
+        other.buf, other.offsets[b], other.offsets[b + 1] - other.offsets[b]);
+    }
+
+    /** Merge sort of {@code order[lo, hi)} by key. */
+    void sort(int[] tmp, int lo, int hi) {
+      if (hi - lo < 2) return;
+      int mid = (lo + hi) >>> 1;
+      sort(tmp, lo, mid);
+      sort(tmp, mid, hi);
+      int i = lo, j = mid, k = lo;
+      while (i < mid && j < hi) {
+        tmp[k++] = compare(order[j], this, order[i]) < 0 ? order[j++] : order[i++];
+      }
+      while (i < mid) tmp[k++] = order[i++];
+      while (j < hi) tmp[k++] = order[j++];
+      System.arraycopy(tmp, lo, order, lo, hi - lo);
+    }
+  }
+
+  /**
+   * Encodes and optionally sorts the values in {@code [from, to)}. Each
+   * partition owns its encoder state and output buffer so partitions never
+   * share either.
+   */
+  abstract class Partition implements Callable<Run> {
+    final int from;
+    final int to;
+
+    Partition(int from, int to) {
+      this.from = from;
+      this.to = to;
+    }
+
+    /** Encode {@code val} into {@code dst} at {@code off}, returning its length. */
+    abstract int encode(long val, byte[] dst, int off) throws IOException;
+
+    public Run call() throws IOException {
+      long[] vals = BenchmarkParallelEncodings.this.vals;
+      int n = to - from;
+      byte[] buf = new byte[n * MAX_KEY_LENGTH];
+      int[] offsets = new int[n + 1];
+      int[] order = new int[n];
+      int pos = 0;
+
+      for (int i = 0; i < n; i++) {
+        offsets[i] = pos;
+        order[i] = i;
+        pos += encode(vals[from + i], buf, pos);
+      }
+      offsets[n] = pos;
+
+      Run run = new Run(buf, offsets, order);
+      if (Stage.ENCODE != stage) {
+        run.sort(new int[n], 0, n);
+      }
+      return run;
+    }
+  }
+
+  interface PartitionFactory {
+    Partition create(int from, int to);
+  }
+
+  /** Head of a sorted run, ordered by its current key. */
+  static class Cursor implements Comparable<Cursor> {
+    final Run run;
+    int idx = 0;
+
+    Cursor(Run run) {
+      this.run = run;
+    }
+
+    int current() {
+      return run.order[idx];
+    }
+
+    public int compareTo(Cursor o) {
+      return run.compare(current(), o.run, o.current());
+    }
+  }
+
+  /** Copies every key, in merged order, into one buffer. */
+  static byte[] merge(Run[] runs) {
+    PriorityQueue<Cursor> heap = new PriorityQueue<Cursor>(runs.length);
+    int total = 0;
+    for (Run run : runs) {
+      total += run.offsets[run.order.length];
+      if (run.order.length > 0) heap.add(new Cursor(run));
+    }
+
+    byte[] merged = new byte[total];
+    int pos = 0;
+    while (!heap.isEmpty()) {
+      Cursor c = heap.poll();
+      int[] offsets = c.run.offsets;
+      int key = c.current();
+      int len = offsets[key + 1] - offsets[key];
+      System.arraycopy(c.run.buf, offsets[key], merged, pos, len);
+      pos += len;
+      if (++c.idx < c.run.order.length) heap.add(c);
+    }
+    return merged;
+  }
+
+  private int pipeline(int reps, PartitionFactory factory) throws Exception {
+    int threads = this.threads;
+    Stage stage = this.stage;
+    ExecutorService pool = this.pool;
+    List<Partition> parts = new ArrayList<Partition>(threads);
+    Run[] runs = new Run[threads];
+    int dummy = 0;
+
+    for (int i = 0; i < reps; i++) {
+      parts.clear();
+      for (int p = 0; p < threads; p++) {
+        parts.add(factory.create(
+          (int) ((long) NUM_VALUES * p / threads),
+          (int) ((long) NUM_VALUES * (p + 1) / threads)));
+      }
+      List<Future<Run>> results = pool.invokeAll(parts);
+      for (int p = 0; p < threads; p++) {
+        runs[p] = results.get(p).get();
+      }
+      if (Stage.MERGE == stage) {
+        byte[] merged = merge(runs);
+        dummy ^= merged[merged.length - 1];
+      } else {
+        dummy ^= runs[0].buf[runs[0].offsets[runs[0].order[0]]];
+      }
+    }
+    return dummy;
+  }
+
+  /**
+   * Runs the pipeline for {@code library}. Called directly rather than by
+   * name, so renaming a benchmark breaks the build instead of a run.
+   */
+  int run(String library, int reps) throws Exception {
+    if ("orderedInt64".equals(library)) return orderedInt64(reps);
+    if ("phoenixLong".equals(library)) return phoenixLong(reps);
+    if ("orderlyLong".equals(library)) return orderlyLong(reps);
+    throw new IllegalArgumentException("unknown library: " + library);
+  }
+
+  static void usage() {
+    System.err.println(
+      "usage: BenchmarkParallelEncodings <orderedInt64|phoenixLong|orderlyLong> [reps]");
+    System.exit(1);
+  }
+
+  /**
+   * Reports scaling efficiency for one library. Run each library in its own
+   * JVM: sharing one would make the {@code encode} call site in
+   * {@link Partition#call} megamorphic for whichever library runs last.
+   */
+  public static void main(String[] args) throws Exception {
+    if (args.length < 1 || args.length > 2) usage();
+    String library = args[0];
+    int reps = 10;
+    try {
+      if (args.length > 1) reps = Integer.parseInt(args[1]);
+    } catch (NumberFormatException ex) {
+      usage();
+    }
+    if (reps < 1 || !Arrays.asList("orderedInt64", "phoenixLong", "orderlyLong").contains(library)) {
+      usage();
+    }
+
+    int cores = Runtime.getRuntime().availableProcessors();
+    List<Integer> counts = new ArrayList<Integer>();
+    for (int n = 1; n < cores; n *= 2) {
+      counts.add(n);
+    }
+    counts.add(cores);
+
+    BenchmarkParallelEncodings b = new BenchmarkParallelEncodings();
+    b.order = Order.ASCENDING;
+    System.out.println(String.format("%-14s %-7s %7s %12s %10s",
+      "library", "stage", "threads", "ms/rep", "efficiency"));
+    for (Stage stage : Stage.values()) {
+      long base = 0;
+      for (int n : counts) {
+        b.threads = n;
+        b.stage = stage;
+        b.setUp();
+        long nanos;
+        try {
+          // one untimed pass so the comparison is between warm pipelines.
+          b.run(library, reps);
+          long start = System.nanoTime();
+          b.run(library, reps);
+          nanos = System.nanoTime() - start;
+        } finally {
+          b.tearDown();
+        }
+        if (1 == n) base = nanos;
+        System.out.println(String.format("%-14s %-7s %7d %12.3f %10.2f",
+          library, stage, n, nanos / 1e6 / reps, (double) base / (n * nanos)));
+      }
+    }
+  }
+
+  @Benchmark
+  public int orderedInt64(int reps) throws Exception {
+    final Order ord = this.order;
+    return pipeline(reps, new PartitionFactory() {
+      public Partition create(int from, int to) {
+        return new Partition(from, to) {
+          ByteRange buff = new ByteRange(MAX_KEY_LENGTH);
+
+          int encode(long val, byte[] dst, int off) {
+            ByteRangeUtils.clear(buff);
+            OrderedBytes.encodeInt64(buff, val, ord);
+            int len = buff.getPosition();
+            System.arraycopy(buff.getBytes(), 0, dst, off, len);
+            return len;
+          }
+        };
+      }
+    });
+  }
+
+  @Benchmark
+  public int phoenixLong(int reps) throws Exception {
+    final ColumnModifier order = this.phoenixOrder;
+    return pipeline(reps, new PartitionFactory() {
+      public Partition create(int from, int to) {
+        return new Partition(from, to) {
+          int encode(long val, byte[] dst, int off) {
+            byte[] key = PDataType.LONG.toBytes(val, order);
+            System.arraycopy(key, 0, dst, off, key.length);
+            return key.length;
+          }
+        };
+      }
+    });
+  }
+
+  @Benchmark
+  public int orderlyLong(int reps) throws Exception {
+    final com.gotometrics.orderly.Order order = this.orderlyOrder;
+    return pipeline(reps, new PartitionFactory() {
+      public Partition create(int from, int to) {
+        return new Partition(from, to) {
+          ImmutableBytesWritable w = new ImmutableBytesWritable(new byte[MAX_KEY_LENGTH]);
+          LongRowKey r = new LongRowKey();
+          { r.setOrder(order); }
+
+          int encode(long val, byte[] dst, int off) throws IOException {
+            RowKeyUtils.seek(w, -w.getOffset());
+            r.serialize(val, w);
+            int len = w.getOffset();
+            System.arraycopy(w.get(), 0, dst, off, len);
+            return len;
+          }
+        };
+      }
+    });
+  }
+}
@@ -0,0 +1,330 @@
+package microbench;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.hadoop.hbase.io.ImmutableBytesWritable;
+import org.apache.hadoop.hbase.types.Order;
+import org.apache.hadoop.hbase.util.ByteRange;
+import org.apache.hadoop.hbase.util.ByteRangeUtils;
+import org.apache.hadoop.hbase.util.OrderedBytes;
+
+import com.gotometrics.orderly.RowKeyUtils;
+import com.gotometrics.orderly.StringRowKey;
+import com.salesforce.phoenix.schema.PDataType;
+
+/**
+ * Measures how quickly each encoder becomes fast in a fresh JVM. Caliper
+ * warms up before it measures, which hides exactly this cost.
+ * <p>
+ * For every encoder and JIT mode, forks a JVM that times each bucket of
+ * {@link #BUCKET} encode calls from the first call on. No encoder is warmed:
+ * the encoder's state is built, and its library's classes are loaded and
+ * initialized, inside the first timed bucket, so that bucket carries the
+ * full startup cost for all three alike.
+ * <p>
+ * The fork runs with compilation logging enabled. Compilations of the
+ * encoder's library, of its wrapper and of the timed loop in
+ * {@code child} are shown next to the bucket timings, along with the whole
+ * inlining tree of each. The loop's on-stack replacement compile usually
+ * inlines the wrapper and the library, and is what makes later buckets
+ * fast.
+ * <p>
+ * Usage: {@code ColdStart [calls] [forks]}, where calls is a positive
+ * multiple of {@link #BUCKET}.
+ */
+public class ColdStart {
+
+  static final int BUCKET = 1000;
+  static final int VALUE_LENGTH = 15;
+  static final String CHILD = "--child";
+  static final String CHILD_METHOD = ColdStart.class.getName() + "::child";
+
+  enum Mode {
+    INTERPRETED("-Xint"),
+    C1("-XX:+TieredCompilation", "-XX:TieredStopAtLevel=1"),
+    TIERED("-XX:+TieredCompilation");
+
+    final String[] vmArgs;
+
+    Mode(String... vmArgs) {
+      this.vmArgs = vmArgs;
+    }
+  }
+
+  /**
+   * The library classes are referenced solely from the {@link StringEncoder}
+   * implementations, so choosing an encoder defers loading them. It does
+   * load all three wrapper classes, which touch no library code until built.
+   */
+  enum Encoder {
+    ORDERED_STRING("OrderedBytes",
+      "org.apache.hadoop.hbase.util.OrderedBytes::encodeString", OrderedString.class),
+    ORDERLY_STRING("gotometrics.orderly",
+      "com.gotometrics.orderly.StringRowKey::serialize", OrderlyString.class),
+    PHOENIX_VARCHAR("salesforce.phoenix",
+      "com.salesforce.phoenix.schema.PDataType*::toBytes", PhoenixVarchar.class);
+
+    /** substring identifying this encoder's classes in compilation log output */
+    final String jitFilter;
+    /** CompileCommand pattern for the library method under test */
+    final String entryPoint;
+    final String wrapper;
+
+    Encoder(String jitFilter, String entryPoint, Class<? extends StringEncoder> wrapper) {
+      this.jitFilter = jitFilter;
+      this.entryPoint = entryPoint;
+      this.wrapper = wrapper.getName();
+    }
+  }
+
+  interface StringEncoder {
+    int encode(String val) throws IOException;
+  }
+
+  static class OrderedString implements StringEncoder {
+    ByteRange buff = new ByteRange(VALUE_LENGTH * 4 + 2);
+
+    public int encode(String val) {
+      ByteRangeUtils.clear(buff);
+      OrderedBytes.encodeString(buff, val, Order.ASCENDING);
+      return buff.getPosition();
+    }
+  }
+
+  static class OrderlyString implements StringEncoder {
+    ImmutableBytesWritable w = new ImmutableBytesWritable(new byte[VALUE_LENGTH * 4 + 2]);
+    StringRowKey r = new StringRowKey();
+
+    public int encode(String val) throws IOException {
+      RowKeyUtils.seek(w, -w.getOffset());
+      r.serialize(val, w);
+      return w.get()[0];
+    }
+  }
+
+  static class PhoenixVarchar implements StringEncoder {
+    public int encode(String val) {
+      return PDataType.VARCHAR.toBytes(val, null)[0];
+    }
+  }
+
+  static StringEncoder newEncoder(Encoder e) {
+    switch (e) {
+      case ORDERED_STRING: return new OrderedString();
+      case ORDERLY_STRING: return new OrderlyString();
+      case PHOENIX_VARCHAR: return new PhoenixVarchar();
+      default: throw new IllegalArgumentException(e.toString());
+    }
+  }
+
+  static void usage() {
+    System.err.println(String.format(
+      "usage: ColdStart [calls] [forks]%n" +
+      "  calls  encode calls per fork, a positive multiple of %d (default %d)%n" +
+      "  forks  JVMs per encoder and mode, at least 1 (default 3)",
+      BUCKET, 20 * BUCKET));
+    System.exit(1);
+  }
+
+  public static void main(String[] args) throws Exception {
+    if (args.length > 0 && CHILD.equals(args[0])) {
+      child(Encoder.valueOf(args[1]), Integer.parseInt(args[2]));
+      return;
+    }
+
+    int calls = 20 * BUCKET;
+    int forks = 3;
+    try {
+      if (args.length > 0) calls = Integer.parseInt(args[0]);
+      if (args.length > 1) forks = Integer.parseInt(args[1]);
+    } catch (NumberFormatException ex) {
+      usage();
+    }
+    if (args.length > 2 || calls < BUCKET || 0 != calls % BUCKET || forks < 1) {
+      usage();
+    }
+    List<String> summary = new ArrayList<String>();
+    int failed = 0;
+
+    summary.add(String.format("%-16s %-12s %4s %14s %13s %13s %13s",
+      "encoder", "mode", "fork", "first ns/call", "peak ns/call", "calls2peak", "ms2peak"));
+    for (Encoder e : Encoder.values()) {
+      for (Mode m : Mode.values()) {
+        for (int f = 0; f < forks; f++) {
+          System.out.println(String.format("== %s %s fork %d", e, m, f));
+          try {
+            summary.add(summarize(e, m, f, fork(e, m, calls)));
+          } catch (IOException ex) {
+            // keep going so the forks that did finish still get reported.
+            System.out.println(ex.getMessage());
+            summary.add(String.format("%-16s %-12s %4d  failed: %s", e, m, f, ex.getMessage()));
+            failed++;
+          }
+        }
+      }
+    }
+    System.out.println();
+    for (String line : summary) {
+      System.out.println(line);
+    }
+    if (failed > 0) System.exit(1);
+  }
+
+  /**
+   * Time to peak is the first bucket within 10% of the fastest bucket.
+   */
+  static String summarize(Encoder e, Mode m, int fork, long[] buckets) {
+    long best = Long.MAX_VALUE;
+    for (long b : buckets) {
+      best = Math.min(best, b);
+    }
+    int peak = 0;
+    long elapsed = 0;
+    for (; peak < buckets.length; peak++) {
+      elapsed += buckets[peak];
+      if (buckets[peak] <= best + best / 10) break;
+    }
+    return String.format("%-16s %-12s %4d %14.1f %13.1f %13d %13.3f",
+      e, m, fork,
+      (double) buckets[0] / BUCKET,
+      (double) best / BUCKET,
+      (peak + 1) * BUCKET,
+      elapsed / 1e6);
+  }
+
+  static long[] fork(Encoder e, Mode m, int calls) throws IOException, InterruptedException {
+    List<String> cmd = new ArrayList<String>();
+    cmd.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+    cmd.add("-server");
+    for (String arg : m.vmArgs) {
+      cmd.add(arg);
+    }
+    cmd.add("-XX:+PrintCompilation");
+    cmd.add("-XX:+UnlockDiagnosticVMOptions");
+    cmd.add("-XX:CompileCommand=quiet");
+    cmd.add("-XX:CompileCommand=option," + e.entryPoint + ",PrintInlining");
+    cmd.add("-XX:CompileCommand=option," + e.wrapper + "::encode,PrintInlining");
+    cmd.add("-XX:CompileCommand=option," + CHILD_METHOD + ",PrintInlining");
+    cmd.add("-cp");
+    cmd.add(classpath());
+    cmd.add(ColdStart.class.getName());
+    cmd.add(CHILD);
+    cmd.add(e.name());
+    cmd.add(Integer.toString(calls));
+
+    final Process p = new ProcessBuilder(cmd).start();
+    final String jitFilter = e.jitFilter;
+    final String wrapper = e.wrapper;
+    // the VM writes its JIT log to stdout without regard for line boundaries,
+    // so bucket timings come back over stderr instead.
+    Thread jitLog = new Thread() {
+      public void run() {
+        try {
+          BufferedReader out = new BufferedReader(new InputStreamReader(p.getInputStream()));
+          String line;
+          while (null != (line = out.readLine())) {
+            // inlining trees are already scoped to the methods under test by
+            // CompileCommand, so print them whole.
+            String trimmed = line.trim();
+            if (trimmed.startsWith("@") || line.contains(jitFilter) || line.contains(wrapper)
+                || line.contains(CHILD_METHOD)) {
+              System.out.println("    jit: " + trimmed);
+            }
+          }
+          out.close();
+        } catch (IOException ex) {
+          ex.printStackTrace();
+        }
+      }
+    };
+    jitLog.start();
+
+    BufferedReader err = new BufferedReader(new InputStreamReader(p.getErrorStream()));
+    long[] buckets = new long[calls / BUCKET];
+    int n = 0;
+    String line;
+
+    try {
+      while (null != (line = err.readLine())) {
+        if (line.startsWith(CHILD)) {
+          // "--child <bucket> <nanos> <uptime millis>"
+          String[] parts = line.split(" ");
+          buckets[n++] = Long.parseLong(parts[2]);
+          System.out.println(String.format("  %8d calls %10.1f ns/call %8s ms",
+            n * BUCKET, Double.parseDouble(parts[2]) / BUCKET, parts[3]));
+        } else {
+          System.out.println(line);
+        }
+      }
+    } finally {
+      err.close();
+    }
+    jitLog.join();
+    int rc = p.waitFor();
+    if (0 != rc || n != buckets.length) {
+      throw new IOException(String.format("fork %s %s exited with %d after %d buckets",
+        e, m, rc, n));
+    }
+    return buckets;
+  }
+
+  static void child(Encoder e, int calls) throws IOException {
+    Random rand = new Random(System.currentTimeMillis());
+    StringBuilder sb = new StringBuilder(VALUE_LENGTH);
+    for (int i = 0; i < VALUE_LENGTH; i++)
+      sb.append((char) ('a' + rand.nextInt(26)));
+    String val = sb.toString();
+    int dummy = 0;
+
+    // read uptime once, up front, so the management classes are not loaded
+    // and compiled while buckets are being timed.
+    long uptime = ManagementFactory.getRuntimeMXBean().getUptime();
+    long origin = System.nanoTime();
+    long start = origin;
+    // built inside bucket 0 so that class loading counts as startup cost.
+    StringEncoder enc = newEncoder(e);
+
+    for (int b = 0; b < calls / BUCKET; b++) {
+      for (int i = 0; i < BUCKET; i++) {
+        dummy ^= enc.encode(val);
+      }
+      long end = System.nanoTime();
+      // printed outside the timed region; uptime lines up with the
+      // timestamps in the compilation log.
+      System.err.println(CHILD + " " + b + " " + (end - start) + " "
+        + (uptime + (end - origin) / 1000000));
+      start = System.nanoTime();
+    }
+    // keep dummy live
+    if (dummy == Integer.MIN_VALUE) System.out.println(dummy);
+  }
+
+  /**
+   * Recover the classpath from the class loaders; under {@code mvn exec:java}
+   * java.class.path holds only Maven's own launcher.
+   */
+  static String classpath() {
+    StringBuilder sb = new StringBuilder(System.getProperty("java.class.path"));
+    for (ClassLoader cl = ColdStart.class.getClassLoader(); null != cl; cl = cl.getParent()) {
+      if (!(cl instanceof URLClassLoader)) continue;
+      for (URL url : ((URLClassLoader) cl).getURLs()) {
+        try {
+          sb.append(File.pathSeparator).append(new File(url.toURI()).getPath());
+        } catch (URISyntaxException ex) {
+          sb.append(File.pathSeparator).append(url.getPath());
+        }
+      }
+    }
+    return sb.toString();
+  }
+}